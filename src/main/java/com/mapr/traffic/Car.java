@@ -3,6 +3,9 @@ package com.mapr.traffic;
 import com.google.common.base.Preconditions;
 import com.google.common.geometry.S2LatLng;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.function.Function;
 
 /**
@@ -56,19 +59,37 @@ class Car {
     private double currentX, currentY;
     private double targetX, targetY;
 
+    // where this car lives in the CarIndex
+    private CarIndex.Bucket bucket = null;
+    private int slot = -1;
+
     private State state;
 
+    // when we started looking for a place to park
+    private double searchStart;
+
+    // every car always has exactly one thing it is going to do next
+    private Sim.Event<World> pending;
+
+    // our position in the world's list of cars
+    private int id;
+
     @SuppressWarnings("WeakerAccess")
     public Car(World sim) {
         // start parked (but not in any parking spot... we don't worry about assigning parking spaces
         // before the universe has begun).
         state = State.PARKED;
-        sim.schedule(s -> {
+        id = sim.addCar(this);
+        sim.getCarIndex().add(this);
+        pending = sim.schedule(s -> {
             this.startDriving(sim);
             return null;
         }, sim.now() + sim.nextLogNormal(10, 5));
     }
 
+    private Car() {
+    }
+
     @SuppressWarnings("WeakerAccess")
     public void setUseRandomWalk(boolean useRandomWalk) {
         this.useRandomWalk = useRandomWalk;
@@ -91,11 +112,12 @@ class Car {
 
         if (ourSpot != null) {
             ourSpot.unpark();
+            ourSpot = null;
         }
-        targetX = gridify(sim.nextDouble(sim.get("xMax")));
-        targetY = gridify(sim.nextDouble(sim.get("yMax")));
+        targetX = gridify(sim.nextDouble(sim.getXMax()));
+        targetY = gridify(sim.nextDouble(sim.getYMax()));
         state = State.TRAVELING;
-        sim.schedule(this::drive, sim.now());
+        pending = sim.schedule(this::drive, sim.now());
         return null;
     }
 
@@ -114,10 +136,11 @@ class Car {
      */
     private Void drive(World sim) {
         Preconditions.checkState(state == State.TRAVELING, String.format("Unexpected state = %s", state));
-        boolean arrived = stepTowardTarget(sim, targetX, targetY, useReservations ? 800 : 100, this::drive);
+        boolean arrived = stepTowardTarget(sim, targetX, targetY, useReservations ? sim.getReservationRadius() : 100, this::drive);
         if (arrived) {
             state = State.SEARCHING;
-            sim.schedule(this::search, sim.now());
+            searchStart = sim.now();
+            pending = sim.schedule(this::search, sim.now());
         }
         return null;
     }
@@ -152,9 +175,8 @@ class Car {
                 dx = 0;
                 dy = Math.copySign(Math.min(Math.abs(dy), 100), dy);
             }
-            currentX += dx;
-            currentY += dy;
-            sim.schedule(nextAction, sim.now() + 100 / DRIVING_SPEED + sim.nextDouble(1));
+            moveBy(sim, dx, dy);
+            pending = sim.schedule(nextAction, sim.now() + 100 / DRIVING_SPEED + sim.nextDouble(1));
         }
         return arrived;
     }
@@ -178,16 +200,15 @@ class Car {
             if (ourSpot == null) {
                 randomSearchStep(sim);
             } else {
-                ourSpot.park(sim, this);
-                state = State.PARKED;
-                sim.schedule(this::startDriving, sim.now() + sim.nextLogNormal(600, 1.5));
+                parkHere(sim);
             }
         } else {
             boolean reservationFail = useReservations && ourSpot != null && !ourSpot.confirmReservation(sim, this);
-            if (ourSpot == null || reservationFail || !ourSpot.isInUse(sim)) {
+            boolean taken = !useReservations && ourSpot != null && ourSpot.isInUse(sim);
+            if (ourSpot == null || reservationFail || taken) {
                 ourSpot = sim.search(targetX, targetY, 2000);
                 if (useReservations && ourSpot != null) {
-                    ourSpot.reserve(sim, this, 30);
+                    ourSpot.reserve(sim, this, sim.getReservationWindow());
                 }
             }
             assert ourSpot == null || !useReservations || ourSpot.confirmReservation(sim, this);
@@ -204,9 +225,7 @@ class Car {
                 } else {
                     if (stepTowardTarget(sim, ourSpot.getX(), ourSpot.getY(), 100, this::search)) {
                         // arrived!
-                        ourSpot.park(sim, this);
-                        state = State.PARKED;
-                        sim.schedule(this::startDriving, sim.now() + sim.nextLogNormal(600, 1.5));
+                        parkHere(sim);
                     }
                 }
             }
@@ -214,6 +233,50 @@ class Car {
         return null;
     }
 
+    /**
+     * Parks in our spot and decides how long to stay.
+     *
+     * @param sim The world
+     */
+    private void parkHere(World sim) {
+        ourSpot.park(sim, this);
+        state = State.PARKED;
+        sim.parked(sim.now() - searchStart);
+        pending = sim.schedule(this::startDriving, sim.now() + sim.nextLogNormal(600, 1.5));
+    }
+
+    private void moveBy(World sim, double dx, double dy) {
+        if (dx != 0 || dy != 0) {
+            currentX += dx;
+            currentY += dy;
+            sim.getCarIndex().moved(this);
+        }
+    }
+
+    /**
+     * Only for use by CarIndex.
+     */
+    CarIndex.Bucket getBucket() {
+        return bucket;
+    }
+
+    int getSlot() {
+        return slot;
+    }
+
+    void setBucket(CarIndex.Bucket bucket, int slot) {
+        this.bucket = bucket;
+        this.slot = slot;
+    }
+
+    double getX() {
+        return currentX;
+    }
+
+    double getY() {
+        return currentY;
+    }
+
     double distanceTo(S2LatLng location) {
         return location.getEarthDistance(Geo.getS2LatLng(currentX, currentY));
     }
@@ -232,11 +295,11 @@ class Car {
         double dx = 0;
         double dy = 0;
         double u = sim.nextDouble(1);
-        if (u < 0.25 && sim.get("xMax") >= currentX + 100) {
+        if (u < 0.25 && sim.getXMax() >= currentX + 100) {
             dx = 100;
         } else if (u < 0.5 && currentX >= 100) {
             dx = -100;
-        } else if (u < 0.75 && sim.get("yMax") >= currentY + 100) {
+        } else if (u < 0.75 && sim.getYMax() >= currentY + 100) {
             dy = 100;
         } else if (currentY >= 100) {
             dy = -100;
@@ -245,9 +308,8 @@ class Car {
             dx = 0;
             dy = 0;
         }
-        currentX += dx;
-        currentY += dy;
-        sim.schedule(this::search, sim.now() + 100 / DRIVING_SPEED + sim.nextDouble(1));
+        moveBy(sim, dx, dy);
+        pending = sim.schedule(this::search, sim.now() + 100 / DRIVING_SPEED + sim.nextDouble(1));
     }
 
 
@@ -255,4 +317,79 @@ class Car {
     public State getState() {
         return state;
     }
+
+    int getId() {
+        return id;
+    }
+
+    /**
+     * Writes everything needed to put this car back exactly where it was,
+     * including when it will next do something.
+     *
+     * @param out Where to write.
+     * @throws IOException If the write fails.
+     */
+    void writeState(DataOutputStream out) throws IOException {
+        Preconditions.checkState(pending != null, "Car %s has nothing scheduled", id);
+        out.writeByte(state.ordinal());
+        out.writeBoolean(useRandomWalk);
+        out.writeBoolean(useReservations);
+        out.writeDouble(currentX);
+        out.writeDouble(currentY);
+        out.writeDouble(targetX);
+        out.writeDouble(targetY);
+        out.writeDouble(searchStart);
+        // zero is never a valid cell id
+        out.writeLong(ourSpot == null ? 0 : ourSpot.getCellId().id());
+        out.writeDouble(pending.getWhen());
+        out.writeLong(pending.getSequence());
+    }
+
+    /**
+     * Reads a car written by writeState and adds it to the world along with its
+     * next event.
+     *
+     * @param sim The world to put the car into.
+     * @param in  Where to read from.
+     * @return The new car.
+     * @throws IOException If the read fails.
+     */
+    static Car readState(World sim, DataInputStream in) throws IOException {
+        Car car = new Car();
+        int state = in.readByte();
+        if (state < 0 || state >= State.values().length) {
+            throw new IOException("Bad car state in checkpoint: " + state);
+        }
+        car.state = State.values()[state];
+        car.useRandomWalk = in.readBoolean();
+        car.useReservations = in.readBoolean();
+        car.currentX = in.readDouble();
+        car.currentY = in.readDouble();
+        car.targetX = in.readDouble();
+        car.targetY = in.readDouble();
+        car.searchStart = in.readDouble();
+        long spot = in.readLong();
+        if (spot != 0) {
+            car.ourSpot = sim.getSpotTable().get(spot);
+            if (car.ourSpot == null) {
+                throw new IOException("Unknown parking spot in checkpoint: " + spot);
+            }
+        }
+        double when = in.readDouble();
+        long sequence = in.readLong();
+
+        car.id = sim.addCar(car);
+        sim.getCarIndex().add(car);
+        switch (car.state) {
+            case PARKED:
+                car.pending = sim.schedule(car::startDriving, when, sequence);
+                break;
+            case TRAVELING:
+                car.pending = sim.schedule(car::drive, when, sequence);
+                break;
+            default:
+                car.pending = sim.schedule(car::search, when, sequence);
+        }
+        return car;
+    }
 }
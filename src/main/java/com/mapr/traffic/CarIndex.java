@@ -0,0 +1,167 @@
+package com.mapr.traffic;
+
+import com.google.common.geometry.S2CellId;
+import com.google.common.geometry.S2LatLng;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+/**
+ * Keeps track of where cars are so that we can ask things like how many cars
+ * are searching for parking near some point.
+ *
+ * Cars are kept in buckets, one per S2 cell at a fixed level. A car knows which
+ * bucket it is in and where, so moving a car from one bucket to another is a
+ * hash lookup plus a swap with the last car in the old bucket. Buckets are never
+ * removed once created which lets us keep them in both a hash map (for moves)
+ * and an ordered map (for range scans over a covering).
+ */
+class CarIndex {
+    // roughly 150m on a side
+    static final int DEFAULT_LEVEL = 16;
+
+    private final int level;
+    private final Map<Long, Bucket> buckets = new HashMap<>();
+    private final TreeMap<Long, Bucket> ordered = new TreeMap<>();
+
+    CarIndex() {
+        this(DEFAULT_LEVEL);
+    }
+
+    @SuppressWarnings("WeakerAccess")
+    public CarIndex(int level) {
+        this.level = level;
+    }
+
+    /**
+     * Starts tracking a car at its current location.
+     */
+    void add(Car car) {
+        bucket(cell(car)).add(car);
+    }
+
+    /**
+     * Called whenever a car changes position.
+     */
+    void moved(Car car) {
+        long cell = cell(car);
+        Bucket old = car.getBucket();
+        if (old == null || old.cell != cell) {
+            if (old != null) {
+                old.remove(car);
+            }
+            bucket(cell).add(car);
+        }
+    }
+
+    /**
+     * Counts cars within a radius of a point.
+     *
+     * @param x      Center of the search (m from origin).
+     * @param y      Center of the search (m from origin).
+     * @param radius How far to look.
+     * @param state  Only count cars in this state. Null means count all cars.
+     * @return The number of cars found.
+     */
+    int count(double x, double y, double radius, Car.State state) {
+        int[] n = new int[1];
+        scan(x, y, radius, state, car -> n[0]++);
+        return n[0];
+    }
+
+    /**
+     * Lists cars within a radius of a point.
+     *
+     * @param x      Center of the search (m from origin).
+     * @param y      Center of the search (m from origin).
+     * @param radius How far to look.
+     * @param state  Only return cars in this state. Null means return all cars.
+     * @return The cars found, in no particular order.
+     */
+    List<Car> near(double x, double y, double radius, Car.State state) {
+        List<Car> r = new ArrayList<>();
+        scan(x, y, radius, state, r::add);
+        return r;
+    }
+
+    /**
+     * Returns the number of cars being tracked.
+     */
+    int size() {
+        int n = 0;
+        for (Bucket b : ordered.values()) {
+            n += b.size;
+        }
+        return n;
+    }
+
+    private void scan(double x, double y, double radius, Car.State state, Consumer<Car> action) {
+        S2LatLng center = Geo.getS2LatLng(x, y);
+        long previous = 0;
+        for (S2CellId search : Geo.regionSearch(center, radius)) {
+            // cells finer than our buckets are searched using the enclosing bucket
+            if (search.level() > level) {
+                search = search.parent(level);
+                if (search.id() == previous) {
+                    continue;
+                }
+            }
+            previous = search.id();
+            for (Bucket b : ordered.subMap(search.rangeMin().id(), true, search.rangeMax().id(), true).values()) {
+                for (int i = 0; i < b.size; i++) {
+                    Car car = b.cars[i];
+                    if ((state == null || car.getState() == state) && car.distanceTo(center) <= radius) {
+                        action.accept(car);
+                    }
+                }
+            }
+        }
+    }
+
+    private long cell(Car car) {
+        return S2CellId.fromLatLng(Geo.getS2LatLng(car.getX(), car.getY())).parent(level).id();
+    }
+
+    private Bucket bucket(long cell) {
+        Bucket r = buckets.get(cell);
+        if (r == null) {
+            r = new Bucket(cell);
+            buckets.put(cell, r);
+            ordered.put(cell, r);
+        }
+        return r;
+    }
+
+    static class Bucket {
+        private final long cell;
+        private Car[] cars = new Car[4];
+        private int size = 0;
+
+        private Bucket(long cell) {
+            this.cell = cell;
+        }
+
+        private void add(Car car) {
+            if (size == cars.length) {
+                cars = Arrays.copyOf(cars, 2 * size);
+            }
+            cars[size] = car;
+            car.setBucket(this, size);
+            size++;
+        }
+
+        private void remove(Car car) {
+            size--;
+            Car last = cars[size];
+            cars[car.getSlot()] = last;
+            last.setBucket(this, car.getSlot());
+            cars[size] = null;
+            car.setBucket(null, -1);
+        }
+    }
+}
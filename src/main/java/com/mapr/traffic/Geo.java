@@ -65,7 +65,7 @@ class Geo {
 
     @SuppressWarnings("WeakerAccess")
 
-    private static List<S2CellId> regionSearch(S2LatLng point, double radius) {
+    static List<S2CellId> regionSearch(S2LatLng point, double radius) {
         ArrayList<S2CellId> covering = new ArrayList<>();
         S2Cap circle = S2Cap.fromAxisAngle(point.toPoint(), S1Angle.radians(radius / S2LatLng.EARTH_RADIUS_METERS));
         new S2RegionCoverer().getCovering(circle, covering);
@@ -0,0 +1,47 @@
+package com.mapr.traffic;
+
+import java.io.PrintWriter;
+import java.util.Map;
+
+/**
+ * Writes periodic snapshots of parking occupancy as csv so that we can see
+ * where and when parking goes critical. Each row has the time, the S2 level
+ * and id of a cell and the number of occupied, reserved and free spots in
+ * that cell. Only cells that contain parking spots are written.
+ *
+ * Typical use is
+ * <pre>
+ *     world.every(60, new OccupancyExporter(out, 13, 15)::export);
+ *     world.run(3600);
+ * </pre>
+ */
+class OccupancyExporter {
+    private final PrintWriter out;
+    private final int[] levels;
+
+    @SuppressWarnings("WeakerAccess")
+    public OccupancyExporter(PrintWriter out, int... levels) {
+        this.out = out;
+        this.levels = levels.clone();
+        out.printf("t,level,cell,occupied,reserved,free\n");
+    }
+
+    /**
+     * Writes one snapshot.
+     *
+     * @param w The world to look at.
+     * @return Void
+     */
+    Void export(World w) {
+        OccupancyIndex occupancy = w.getOccupancy();
+        for (int level : levels) {
+            for (Map.Entry<Long, OccupancyIndex.Counts> cell : occupancy.level(level).entrySet()) {
+                OccupancyIndex.Counts c = cell.getValue();
+                out.printf("%.1f,%d,%016x,%d,%d,%d\n", w.now(), level, cell.getKey(),
+                        c.getOccupied(), c.getReserved(), c.getFree());
+            }
+        }
+        out.flush();
+        return null;
+    }
+}
@@ -0,0 +1,260 @@
+package com.mapr.traffic;
+
+import com.google.common.base.Preconditions;
+import com.google.common.geometry.S2CellId;
+import com.google.common.geometry.S2Region;
+import com.google.common.geometry.S2RegionCoverer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Keeps counts of occupied, reserved and free parking spots for S2 cells
+ * at several levels. The counts are updated incrementally as parking spots
+ * change state so that occupancy of a region can be found by looking at a
+ * handful of cells instead of every spot in the region.
+ *
+ * Reservations expire lazily in ParkingSpot. To keep the reserved counts
+ * honest, we remember when each reservation would expire and force the
+ * expiration before answering any question.
+ */
+class OccupancyIndex {
+    // roughly 4.8km, 1.2km, 300m and 75m on a side
+    static final int[] DEFAULT_LEVELS = {11, 13, 15, 17};
+
+    private final Sim<World> sim;
+    private final SortedMap<Long, ParkingSpot> spots;
+    private final int[] levels;
+    private final List<TreeMap<Long, Counts>> cells = new ArrayList<>();
+    private final PriorityQueue<Expiration> expirations = new PriorityQueue<>();
+
+    @SuppressWarnings("WeakerAccess")
+    public OccupancyIndex(Sim<World> sim, SortedMap<Long, ParkingSpot> spots, int... levels) {
+        Preconditions.checkArgument(levels.length > 0, "Must have at least one level");
+        this.sim = sim;
+        this.spots = spots;
+        this.levels = levels.clone();
+        Arrays.sort(this.levels);
+        for (int ignored : this.levels) {
+            cells.add(new TreeMap<>());
+        }
+    }
+
+    /**
+     * Starts tracking a parking spot. The spot should also be in the spot table
+     * so that very small cells can be counted directly.
+     *
+     * @param spot The spot to track.
+     */
+    void add(ParkingSpot spot) {
+        spot.setOccupancy(this);
+        ParkingSpot.Status status = spot.getStatus();
+        for (int i = 0; i < levels.length; i++) {
+            Counts c = cell(i, spot.getCellId());
+            c.total++;
+            c.adjust(status, 1);
+        }
+    }
+
+    /**
+     * Called by a spot when it changes state.
+     */
+    void changed(ParkingSpot spot, ParkingSpot.Status before, ParkingSpot.Status after) {
+        if (before == after) {
+            return;
+        }
+        for (int i = 0; i < levels.length; i++) {
+            Counts c = cell(i, spot.getCellId());
+            c.adjust(before, -1);
+            c.adjust(after, 1);
+        }
+    }
+
+    /**
+     * Called by a spot when it gets reserved so that we can force the reservation
+     * to expire on time. Old expirations are cleared out first so the queue only
+     * holds reservations that could still be live, even if nobody asks us anything.
+     */
+    void reserved(ParkingSpot spot, double until) {
+        expire();
+        expirations.add(new Expiration(spot, until));
+    }
+
+    /**
+     * Returns the counts for a single cell.
+     */
+    Counts occupancy(S2CellId cell) {
+        expire();
+        return count(cell, new Counts());
+    }
+
+    /**
+     * Returns the total counts for all cells in a covering. The cells should not overlap.
+     * The cost of this is proportional to the number of indexed cells inside the
+     * covering, not to the number of parking spots.
+     */
+    Counts occupancy(List<S2CellId> covering) {
+        expire();
+        Counts r = new Counts();
+        for (S2CellId cell : covering) {
+            count(cell, r);
+        }
+        return r;
+    }
+
+    /**
+     * Returns counts for an arbitrary region. The region is covered with cells no smaller
+     * than our finest level so the result may include spots just outside the region.
+     */
+    Counts occupancy(S2Region region) {
+        S2RegionCoverer coverer = new S2RegionCoverer();
+        coverer.setMaxLevel(levels[levels.length - 1]);
+        ArrayList<S2CellId> covering = new ArrayList<>();
+        coverer.getCovering(region, covering);
+        return occupancy(covering);
+    }
+
+    /**
+     * Returns counts for the same cells that Geo.scan would search.
+     */
+    Counts occupancy(double x, double y, double radius) {
+        return occupancy(Geo.regionSearch(Geo.getS2LatLng(x, y), radius));
+    }
+
+    /**
+     * Returns the counts for every spot we know about.
+     */
+    Counts total() {
+        expire();
+        Counts r = new Counts();
+        for (Counts c : cells.get(0).values()) {
+            r.add(c);
+        }
+        return r;
+    }
+
+    /**
+     * Returns the counts for every non-empty cell at one of our levels, ordered by cell id.
+     */
+    SortedMap<Long, Counts> level(int level) {
+        int i = Arrays.binarySearch(levels, level);
+        Preconditions.checkArgument(i >= 0, "Level %s is not indexed", level);
+        expire();
+        return Collections.unmodifiableSortedMap(cells.get(i));
+    }
+
+    int[] getLevels() {
+        return levels.clone();
+    }
+
+    /**
+     * Returns the number of reservations we are still waiting to expire.
+     */
+    int pendingExpirations() {
+        return expirations.size();
+    }
+
+    private Counts count(S2CellId cell, Counts r) {
+        int level = cell.level();
+        if (level > levels[levels.length - 1]) {
+            // smaller than anything we keep, but also small enough to just look
+            long a = cell.rangeMin().id();
+            long b = cell.rangeMax().id();
+            for (ParkingSpot p : spots.subMap(a, b + 1).values()) {
+                r.total++;
+                r.adjust(p.getStatus(), 1);
+            }
+        } else {
+            // the coarsest level that is at least as fine as this cell
+            int i = 0;
+            while (levels[i] < level) {
+                i++;
+            }
+            long a = cell.childBegin(levels[i]).id();
+            long b = cell.childEnd(levels[i]).id();
+            for (Counts c : cells.get(i).subMap(a, b).values()) {
+                r.add(c);
+            }
+        }
+        return r;
+    }
+
+    private Counts cell(int i, S2CellId leaf) {
+        return cells.get(i).computeIfAbsent(leaf.parent(levels[i]).id(), k -> new Counts());
+    }
+
+    private void expire() {
+        double now = sim.now();
+        while (!expirations.isEmpty() && expirations.peek().until < now) {
+            expirations.poll().spot.checkExpiration(now);
+        }
+    }
+
+    private static class Expiration implements Comparable<Expiration> {
+        private final ParkingSpot spot;
+        private final double until;
+
+        Expiration(ParkingSpot spot, double until) {
+            this.spot = spot;
+            this.until = until;
+        }
+
+        @Override
+        public int compareTo(Expiration o) {
+            return Double.compare(until, o.until);
+        }
+    }
+
+    /**
+     * Numbers of spots in various states.
+     */
+    static class Counts {
+        private int total;
+        private int occupied;
+        private int reserved;
+
+        @SuppressWarnings("WeakerAccess")
+        public int getTotal() {
+            return total;
+        }
+
+        @SuppressWarnings("WeakerAccess")
+        public int getOccupied() {
+            return occupied;
+        }
+
+        @SuppressWarnings("WeakerAccess")
+        public int getReserved() {
+            return reserved;
+        }
+
+        @SuppressWarnings("WeakerAccess")
+        public int getFree() {
+            return total - occupied - reserved;
+        }
+
+        private void add(Counts other) {
+            total += other.total;
+            occupied += other.occupied;
+            reserved += other.reserved;
+        }
+
+        private void adjust(ParkingSpot.Status status, int delta) {
+            switch (status) {
+                case OCCUPIED:
+                    occupied += delta;
+                    break;
+                case RESERVED:
+                    reserved += delta;
+                    break;
+                default:
+                    // free spots are whatever is left over
+            }
+        }
+    }
+}
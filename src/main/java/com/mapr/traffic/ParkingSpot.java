@@ -1,6 +1,7 @@
 package com.mapr.traffic;
 
 import com.google.common.base.Preconditions;
+import com.google.common.geometry.S2CellId;
 import com.google.common.geometry.S2LatLng;
 
 /**
@@ -9,17 +10,28 @@ import com.google.common.geometry.S2LatLng;
  * be occupied.
  */
 class ParkingSpot {
+    enum Status {
+        FREE,
+        RESERVED,
+        OCCUPIED
+    }
+
     private double x, y;
     private S2LatLng location;
+    private S2CellId cellId;
     private boolean filled = false;
     private double reservedUntil = 0;
     private Car reservedBy = null;
 
+    // if set, gets told about every change in status
+    private OccupancyIndex occupancy = null;
+
     @SuppressWarnings("WeakerAccess")
     public ParkingSpot(double x, double y) {
         this.x = x;
         this.y = y;
         location = Geo.getS2LatLng(x, y);
+        cellId = S2CellId.fromLatLng(location);
     }
 
     @SuppressWarnings("WeakerAccess")
@@ -48,9 +60,11 @@ class ParkingSpot {
             throw new IllegalStateException("Tried to park in filled space");
         }
         if (reservedBy == null || reservedBy == car) {
+            Status before = getStatus();
             filled = true;
             reservedUntil = 0;
             reservedBy = null;
+            changed(before);
         } else {
             throw new IllegalStateException("Tried to park in reserved space");
         }
@@ -58,8 +72,13 @@ class ParkingSpot {
 
     @SuppressWarnings({"WeakerAccess", "SameParameterValue"})
     public void reserve(Sim<World> w, Car who, double duration) {
+        Status before = getStatus();
         reservedUntil = w.now() + duration;
         reservedBy = who;
+        if (occupancy != null) {
+            occupancy.reserved(this, reservedUntil);
+        }
+        changed(before);
     }
 
     @SuppressWarnings("WeakerAccess")
@@ -70,9 +89,11 @@ class ParkingSpot {
 
     @SuppressWarnings("WeakerAccess")
     public void unpark() {
+        Status before = getStatus();
         filled = false;
         reservedUntil = 0;
         reservedBy = null;
+        changed(before);
     }
 
     @SuppressWarnings("WeakerAccess")
@@ -80,10 +101,71 @@ class ParkingSpot {
         return location;
     }
 
+    @SuppressWarnings("WeakerAccess")
+    public S2CellId getCellId() {
+        return cellId;
+    }
+
+    /**
+     * Returns the current status without checking for expired reservations.
+     */
+    Status getStatus() {
+        if (filled) {
+            return Status.OCCUPIED;
+        } else if (reservedBy != null) {
+            return Status.RESERVED;
+        } else {
+            return Status.FREE;
+        }
+    }
+
+    boolean isFilled() {
+        return filled;
+    }
+
+    double getReservedUntil() {
+        return reservedUntil;
+    }
+
+    Car getReservedBy() {
+        return reservedBy;
+    }
+
+    /**
+     * Puts this spot back into a state recorded in a checkpoint.
+     */
+    void restore(boolean filled, double reservedUntil, Car reservedBy) {
+        Status before = getStatus();
+        this.filled = filled;
+        this.reservedUntil = reservedUntil;
+        this.reservedBy = reservedBy;
+        if (reservedBy != null && occupancy != null) {
+            occupancy.reserved(this, reservedUntil);
+        }
+        changed(before);
+    }
+
+    void setOccupancy(OccupancyIndex occupancy) {
+        this.occupancy = occupancy;
+    }
+
     private void checkExpiration(Sim<World> w) {
-        if (reservedUntil < w.now()) {
+        checkExpiration(w.now());
+    }
+
+    void checkExpiration(double now) {
+        if (reservedUntil < now) {
             // if reservedUntil was not already 0, then a reservation expired
+            Status before = getStatus();
             reservedUntil = 0;
             reservedBy = null;
+            changed(before);
         }
-    }}
+    }
+
+    private void changed(Status before) {
+        if (occupancy != null) {
+            occupancy.changed(this, before, getStatus());
+        }
+    }
+}
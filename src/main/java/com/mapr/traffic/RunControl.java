@@ -0,0 +1,280 @@
+package com.mapr.traffic;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Runs a simulation until the answers are good enough rather than for a fixed time.
+ *
+ * Time is chopped into batches of equal length. At the end of each batch, every
+ * metric is asked for a value that summarizes that batch. All cars start parked
+ * in no particular spot, so the early batches are not typical of steady state.
+ * We find the end of that warm-up period using MSER-5 (batch values are
+ * averaged in groups of five and the truncation point that minimizes the
+ * standard error of what is left wins). Once every metric has settled down,
+ * the batches after warm-up are regrouped into a modest number of big batches
+ * and a t confidence interval is computed for each metric. We stop when all intervals are narrow
+ * enough, or when we hit the time limit.
+ *
+ * @param <T> The kind of simulation being controlled.
+ */
+class RunControl<T extends Sim<T>> {
+    // MSER is conventionally applied to batches of 5 observations
+    private static final int MSER_BATCH = 5;
+
+    // number of batches used for the confidence interval
+    private static final int CI_BATCHES = 20;
+
+    private final T sim;
+    private final double batchLength;
+    private final double precision;
+    private final Map<String, Function<T, Double>> metrics = new LinkedHashMap<>();
+    private final Map<String, List<Double>> history = new LinkedHashMap<>();
+
+    /**
+     * @param sim         The simulation to run.
+     * @param batchLength How much simulated time goes into each observation.
+     * @param precision   Target half-width of the 95% confidence intervals relative to the mean.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public RunControl(T sim, double batchLength, double precision) {
+        Preconditions.checkArgument(batchLength > 0, "Batch length must be positive");
+        Preconditions.checkArgument(precision > 0, "Precision must be positive");
+        this.sim = sim;
+        this.batchLength = batchLength;
+        this.precision = precision;
+    }
+
+    /**
+     * Adds a metric to watch. The function is called at the end of each batch and
+     * should return a value that summarizes the batch that just ended.
+     */
+    RunControl<T> metric(String name, Function<T, Double> value) {
+        metrics.put(name, value);
+        history.put(name, new ArrayList<>());
+        return this;
+    }
+
+    /**
+     * Runs until all metrics are estimated precisely enough or time runs out.
+     *
+     * @param limit The latest simulated time we are willing to run to.
+     * @return What we learned.
+     */
+    Result run(double limit) {
+        Preconditions.checkState(!metrics.isEmpty(), "Need at least one metric");
+        double end = sim.now();
+        Result r = null;
+        while (end + batchLength <= limit) {
+            end += batchLength;
+            // stop right at the end of the batch so every batch covers the same time
+            sim.advance(end);
+            for (Map.Entry<String, Function<T, Double>> m : metrics.entrySet()) {
+                history.get(m.getKey()).add(m.getValue().apply(sim));
+            }
+            r = evaluate();
+            if (r.converged) {
+                break;
+            }
+        }
+        return r != null ? r : evaluate();
+    }
+
+    private Result evaluate() {
+        Result r = new Result();
+        int n = history.values().iterator().next().size();
+
+        // warm-up is over when every metric says so
+        int warmup = 0;
+        boolean settled = true;
+        for (List<Double> values : history.values()) {
+            int d = truncation(values);
+            settled &= d >= 0;
+            warmup = Math.max(warmup, d);
+        }
+        r.batches = n;
+        r.warmup = settled ? warmup * batchLength : Double.NaN;
+
+        boolean converged = settled && n - warmup >= CI_BATCHES;
+        for (Map.Entry<String, List<Double>> h : history.entrySet()) {
+            Estimate e = settled ? estimate(h.getValue().subList(warmup, n)) : new Estimate(Double.NaN, Double.NaN);
+            r.estimates.put(h.getKey(), e);
+            converged &= e.halfWidth <= precision * Math.abs(e.mean);
+        }
+        r.converged = converged;
+        return r;
+    }
+
+    /**
+     * Finds the warm-up truncation point using MSER-5.
+     *
+     * @param values Batch values in time order.
+     * @return The number of leading values to discard, or -1 if the series has not settled yet.
+     */
+    static int truncation(List<Double> values) {
+        int k = values.size() / MSER_BATCH;
+        if (k < 3) {
+            return -1;
+        }
+        double[] means = new double[k];
+        for (int i = 0; i < k; i++) {
+            double sum = 0;
+            for (int j = 0; j < MSER_BATCH; j++) {
+                sum += values.get(i * MSER_BATCH + j);
+            }
+            means[i] = sum / MSER_BATCH;
+        }
+
+        // suffix sums let us evaluate every truncation point in one pass
+        double sum = 0;
+        double sum2 = 0;
+        int best = -1;
+        double bestScore = Double.POSITIVE_INFINITY;
+        double[] scores = new double[k];
+        for (int d = k - 1; d >= 0; d--) {
+            sum += means[d];
+            sum2 += means[d] * means[d];
+            int m = k - d;
+            double mean = sum / m;
+            scores[d] = Math.max(0, sum2 - m * mean * mean) / ((double) m * m);
+        }
+        // by convention, only the first half of the series is considered
+        for (int d = 0; d <= k / 2; d++) {
+            if (scores[d] < bestScore) {
+                bestScore = scores[d];
+                best = d;
+            }
+        }
+        // if the best point is at the end of the allowed range, we are still warming up
+        if (best == k / 2) {
+            return -1;
+        }
+        return best * MSER_BATCH;
+    }
+
+    /**
+     * Computes a 95% batch means confidence interval.
+     */
+    static Estimate estimate(List<Double> values) {
+        int n = values.size();
+        int batches = Math.min(CI_BATCHES, n);
+        if (batches < 2) {
+            return new Estimate(Double.NaN, Double.NaN);
+        }
+        int size = n / batches;
+        // drop from the front so that we use the most recent data
+        int offset = n - batches * size;
+        double sum = 0;
+        double sum2 = 0;
+        for (int i = 0; i < batches; i++) {
+            double b = 0;
+            for (int j = 0; j < size; j++) {
+                b += values.get(offset + i * size + j);
+            }
+            b /= size;
+            sum += b;
+            sum2 += b * b;
+        }
+        double mean = sum / batches;
+        double variance = Math.max(0, (sum2 - batches * mean * mean) / (batches - 1));
+        return new Estimate(mean, studentT(batches - 1) * Math.sqrt(variance / batches));
+    }
+
+    /**
+     * Approximates the 97.5% quantile of the t distribution using the Cornish-Fisher
+     * expansion. Good to about three digits for more than 3 degrees of freedom.
+     */
+    static double studentT(int df) {
+        double z = 1.959963984540054;
+        double z3 = z * z * z;
+        double z5 = z3 * z * z;
+        return z + (z3 + z) / (4.0 * df) + (5 * z5 + 16 * z3 + 3 * z) / (96.0 * df * df)
+                + (3 * z5 * z * z + 19 * z5 + 17 * z3 - 15 * z) / (384.0 * df * df * df);
+    }
+
+    /**
+     * Fraction of all parking spots that have a car in them, right now.
+     */
+    static Function<World, Double> occupancy() {
+        return w -> {
+            OccupancyIndex.Counts c = w.getOccupancy().total();
+            return (double) c.getOccupied() / c.getTotal();
+        };
+    }
+
+    /**
+     * Average time spent searching for parking by cars that parked during the
+     * batch. Batches with no parking at all report the previous value.
+     */
+    static Function<World, Double> searchTime() {
+        double[] last = {0, 0, 0};
+        return w -> {
+            long n = w.getSearches();
+            double total = w.getTotalSearchTime();
+            if (n > last[0]) {
+                last[2] = (total - last[1]) / (n - last[0]);
+            }
+            last[0] = n;
+            last[1] = total;
+            return last[2];
+        };
+    }
+
+    static class Estimate {
+        private final double mean;
+        private final double halfWidth;
+
+        Estimate(double mean, double halfWidth) {
+            this.mean = mean;
+            this.halfWidth = halfWidth;
+        }
+
+        @SuppressWarnings("WeakerAccess")
+        public double getMean() {
+            return mean;
+        }
+
+        @SuppressWarnings("WeakerAccess")
+        public double getHalfWidth() {
+            return halfWidth;
+        }
+    }
+
+    static class Result {
+        private boolean converged;
+        private int batches;
+        private double warmup;
+        private final Map<String, Estimate> estimates = new LinkedHashMap<>();
+
+        @SuppressWarnings("WeakerAccess")
+        public boolean isConverged() {
+            return converged;
+        }
+
+        /**
+         * How many batches were run in total, including warm-up.
+         */
+        @SuppressWarnings("WeakerAccess")
+        public int getBatches() {
+            return batches;
+        }
+
+        /**
+         * How much simulated time was thrown away as warm-up. NaN if warm-up never ended.
+         */
+        @SuppressWarnings("WeakerAccess")
+        public double getWarmup() {
+            return warmup;
+        }
+
+        @SuppressWarnings("WeakerAccess")
+        public Estimate getEstimate(String metric) {
+            return estimates.get(metric);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.mapr.traffic;
 
+import java.io.*;
 import java.util.*;
 import java.util.function.Function;
 
@@ -11,6 +12,9 @@ public class Sim<T extends Sim> {
     private Random rand = new Random();
     private double t = 0;
 
+    // breaks ties between events at the same time so that runs are repeatable
+    private long sequence = 0;
+
     @SuppressWarnings("WeakerAccess")
     public double now() {
         return t;
@@ -47,6 +51,10 @@ public class Sim<T extends Sim> {
 
     @SuppressWarnings("WeakerAccess")
     public boolean step() {
+        Event<T> pending = todo.peek();
+        if (pending != null) {
+            runMonitors(pending.when);
+        }
         Event next = todo.poll();
         if (next != null) {
             t = next.when;
@@ -61,20 +69,53 @@ public class Sim<T extends Sim> {
     public static class Event<T> implements Comparable<Event<T>> {
         private Function<T, Void> action;
         private final double when;
+        private final long sequence;
 
         @SuppressWarnings("WeakerAccess")
         public Event(Function<T, Void> action, double when) {
+            this(action, when, 0);
+        }
+
+        Event(Function<T, Void> action, double when, long sequence) {
             this.action = action;
             this.when = when;
+            this.sequence = sequence;
+        }
+
+        double getWhen() {
+            return when;
+        }
+
+        long getSequence() {
+            return sequence;
         }
 
         @Override
         public int compareTo(Event<T> o) {
-            return Double.compare(o.when, when);
+            int r = Double.compare(when, o.when);
+            return r != 0 ? r : Long.compare(sequence, o.sequence);
+        }
+    }
+
+    /**
+     * Something that should happen at regular intervals as simulated time passes, but
+     * which isn't part of the simulation itself. Keeping these out of the event queue
+     * means that they don't keep a simulation alive once everything else has stopped.
+     */
+    private static class Monitor<T> {
+        private final Function<T, Void> action;
+        private final double period;
+        private double next;
+
+        private Monitor(Function<T, Void> action, double period, double next) {
+            this.action = action;
+            this.period = period;
+            this.next = next;
         }
     }
 
     private PriorityQueue<Event<T>> todo = new PriorityQueue<>();
+    private List<Monitor<T>> monitors = new ArrayList<>();
 
     public void run(double limit) {
         //noinspection StatementWithEmptyBody
@@ -83,7 +124,128 @@ public class Sim<T extends Sim> {
         }
     }
 
-    void schedule(Function<T, Void> action, double when) {
-        todo.add(new Event<>(action, when));
+    /**
+     * Runs every event scheduled at or before a time and then sets the clock to
+     * exactly that time. Unlike run, this never runs an event past the end, so
+     * whatever is looked at afterwards describes the state at that moment.
+     *
+     * @param end The time to stop at.
+     */
+    void advance(double end) {
+        Event<T> next = todo.peek();
+        while (next != null && next.when <= end) {
+            step();
+            next = todo.peek();
+        }
+        runMonitors(end);
+        t = Math.max(t, end);
+    }
+
+    Event<T> schedule(Function<T, Void> action, double when) {
+        return schedule(action, when, sequence++);
+    }
+
+    /**
+     * Schedules an event with a particular sequence number. This is only for
+     * putting back events from a checkpoint.
+     */
+    Event<T> schedule(Function<T, Void> action, double when, long sequence) {
+        Event<T> e = new Event<>(action, when, sequence);
+        todo.add(e);
+        return e;
+    }
+
+    /**
+     * Restarts the random number generator. This is handy for sending copies of
+     * the same simulation off in different directions.
+     *
+     * @param seed The new seed.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public void setSeed(long seed) {
+        rand.setSeed(seed);
+    }
+
+    /**
+     * Writes the clock, properties and random number state. Pending events and
+     * monitors are not written since they are just code. Subclasses are responsible
+     * for recording enough to put their events back.
+     *
+     * @param out Where to write.
+     * @throws IOException If the write fails.
+     */
+    void writeState(DataOutputStream out) throws IOException {
+        out.writeDouble(t);
+        out.writeLong(sequence);
+        out.writeInt(properties.size());
+        for (Map.Entry<String, Double> p : properties.entrySet()) {
+            out.writeUTF(p.getKey());
+            out.writeDouble(p.getValue());
+        }
+        // Random doesn't expose its state, but it does know how to serialize itself
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream rng = new ObjectOutputStream(bytes)) {
+            rng.writeObject(rand);
+        }
+        out.writeInt(bytes.size());
+        bytes.writeTo(out);
+    }
+
+    /**
+     * Reads back what writeState wrote.
+     *
+     * @param in Where to read from.
+     * @throws IOException If the read fails or the data is not what we expect.
+     */
+    void readState(DataInputStream in) throws IOException {
+        t = in.readDouble();
+        sequence = in.readLong();
+        int n = in.readInt();
+        properties.clear();
+        for (int i = 0; i < n; i++) {
+            set(in.readUTF(), in.readDouble());
+        }
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        try (ObjectInputStream rng = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            rand = (Random) rng.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Bad random number state in checkpoint", e);
+        }
+        todo.clear();
+    }
+
+    /**
+     * Arranges for an action to be invoked every period seconds of simulated time,
+     * starting now. The action is run just before the first event that happens at
+     * or after each multiple of the period.
+     *
+     * @param period How often to invoke the action.
+     * @param action What to do.
+     */
+    void every(double period, Function<T, Void> action) {
+        monitors.add(new Monitor<>(action, period, t));
+    }
+
+    /**
+     * Runs every monitor tick up to a time, earliest first, so that each monitor
+     * sees the clock set to the time of its own tick.
+     */
+    private void runMonitors(double until) {
+        while (true) {
+            Monitor<T> first = null;
+            for (Monitor<T> m : monitors) {
+                if (m.next <= until && (first == null || m.next < first.next)) {
+                    first = m;
+                }
+            }
+            if (first == null) {
+                return;
+            }
+            t = first.next;
+            //noinspection unchecked
+            first.action.apply((T) this);
+            first.next += first.period;
+        }
     }
 }
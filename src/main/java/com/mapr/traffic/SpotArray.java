@@ -0,0 +1,120 @@
+package com.mapr.traffic;
+
+import com.google.common.geometry.S2CellId;
+import com.google.common.geometry.S2LatLng;
+import com.google.common.geometry.S2Point;
+
+import java.util.Arrays;
+import java.util.SortedMap;
+
+/**
+ * A flattened copy of a parking spot table for fast nearest-spot searches.
+ *
+ * Spots are stored in cell id order with their unit vectors in parallel
+ * primitive arrays. Each cell in a search covering is then a contiguous
+ * slice of these arrays. For each slice, we compute squared chord distances
+ * to the target in a tight loop with no calls or branches (which the JIT
+ * can turn into SIMD instructions) and only then look at the few spots that
+ * are close enough and better than what we have so far.
+ *
+ * Squared chord length increases with distance along the surface so comparing
+ * chords gives the same answer as comparing earth distances without any
+ * trigonometry.
+ *
+ * The table is copied once, so this only works for tables that don't
+ * change after construction, like the one in World.
+ */
+class SpotArray {
+    private final long[] ids;
+    private final double[] x;
+    private final double[] y;
+    private final double[] z;
+    private final ParkingSpot[] spots;
+
+    // scratch space for distances
+    private final double[] d2;
+
+    SpotArray(SortedMap<Long, ParkingSpot> table) {
+        int n = table.size();
+        ids = new long[n];
+        x = new double[n];
+        y = new double[n];
+        z = new double[n];
+        spots = new ParkingSpot[n];
+        d2 = new double[n];
+        int i = 0;
+        for (SortedMap.Entry<Long, ParkingSpot> entry : table.entrySet()) {
+            S2Point p = entry.getValue().getLocation().toPoint();
+            ids[i] = entry.getKey();
+            x[i] = p.get(0);
+            y[i] = p.get(1);
+            z[i] = p.get(2);
+            spots[i] = entry.getValue();
+            i++;
+        }
+    }
+
+    int size() {
+        return ids.length;
+    }
+
+    /**
+     * Finds the closest spot that is not in use within limit meters of a point.
+     *
+     * @param w     The world (so we can tell which spots are in use)
+     * @param px    Target location (m from origin).
+     * @param py    Target location (m from origin).
+     * @param limit Maximum allowable distance from target to parking spot.
+     * @return The nearest free spot, or null if there is none.
+     */
+    ParkingSpot nearestFree(Sim<World> w, double px, double py, double limit) {
+        S2LatLng base = Geo.getS2LatLng(px, py);
+        S2Point target = base.toPoint();
+        double tx = target.get(0);
+        double ty = target.get(1);
+        double tz = target.get(2);
+        double threshold = chordSquared(limit);
+
+        ParkingSpot best = null;
+        double closest = Double.MAX_VALUE;
+        for (S2CellId search : Geo.regionSearch(base, limit)) {
+            int lo = lowerBound(search.rangeMin().id());
+            int hi = lowerBound(search.rangeMax().id() + 1);
+            distances(tx, ty, tz, lo, hi);
+            for (int i = lo; i < hi; i++) {
+                double d = d2[i];
+                if (d <= threshold && d < closest && !spots[i].isInUse(w)) {
+                    best = spots[i];
+                    closest = d;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Fills in squared chord distances from the target for a range of spots.
+     * This should stay simple enough for the JIT to vectorize.
+     */
+    private void distances(double tx, double ty, double tz, int lo, int hi) {
+        for (int i = lo; i < hi; i++) {
+            double dx = x[i] - tx;
+            double dy = y[i] - ty;
+            double dz = z[i] - tz;
+            d2[i] = dx * dx + dy * dy + dz * dz;
+        }
+    }
+
+    /**
+     * Returns the squared length of the chord that spans a surface distance in meters.
+     */
+    static double chordSquared(double meters) {
+        double half = Math.sin(meters / S2LatLng.EARTH_RADIUS_METERS / 2);
+        return 4 * half * half;
+    }
+
+    private int lowerBound(long id) {
+        int i = Arrays.binarySearch(ids, id);
+        return i >= 0 ? i : -i - 1;
+    }
+}
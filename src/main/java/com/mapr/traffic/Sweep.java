@@ -0,0 +1,350 @@
+package com.mapr.traffic;
+
+import com.google.common.base.Preconditions;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs a simulation for every combination of a grid of parameters.
+ *
+ * The grid covers the number of cars, the spacing of parking spots, how long
+ * reservations last, how far from the destination cars start reserving and
+ * which parking strategy the cars use. Each combination can be repeated with
+ * different random seeds. Every run uses RunControl so it stops once its
+ * answers are precise enough.
+ *
+ * Runs are spread over all available cores. Each result is appended to a csv
+ * file as soon as the run finishes. If the file already exists, runs that are
+ * already recorded in it are skipped so an interrupted sweep can just be
+ * started again.
+ *
+ * Arguments are the results file followed by any number of name=value,value,...
+ * settings, for example
+ * <pre>
+ *     results.csv cars=500,1000,2000 spacing=10,20 strategy=walk,search,reserve replicates=3
+ * </pre>
+ */
+public class Sweep {
+    // the columns that identify a run, in the order they appear in the results
+    private static final String[] KEYS = {"cars", "spacing", "window", "radius", "strategy", "replicate"};
+
+    private static final String HEADER = String.join(",", KEYS)
+            + ",seed,warmup,end,batches,converged,occupancy,occupancyError,searchTime,searchTimeError,cpu";
+
+    enum Strategy {
+        // drive around at random near the destination
+        WALK,
+        // look up the nearest free spot and drive there
+        SEARCH,
+        // like SEARCH, but reserve the spot from a distance
+        RESERVE
+    }
+
+    private final Map<String, List<String>> grid = new LinkedHashMap<>();
+    private int replicates = 1;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private double batchLength = 60;
+    private double precision = 0.05;
+    private double limit = 24 * 3600;
+
+    Sweep() {
+        grid.put("cars", Arrays.asList("1000"));
+        grid.put("spacing", Arrays.asList(format(World.DEFAULT_SPOT_SPACING)));
+        grid.put("window", Arrays.asList(format(World.DEFAULT_RESERVATION_WINDOW)));
+        grid.put("radius", Arrays.asList(format(World.DEFAULT_RESERVATION_RADIUS)));
+        grid.put("strategy", Arrays.asList("walk", "search", "reserve"));
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.err.printf("Usage: Sweep results.csv [name=value,...]...\n");
+            System.err.printf("    grid: %s\n", String.join(", ", Arrays.copyOf(KEYS, KEYS.length - 1)));
+            System.err.printf("    other: replicates, threads, batch, precision, time\n");
+            System.exit(1);
+        }
+        Sweep sweep = new Sweep();
+        for (int i = 1; i < args.length; i++) {
+            sweep.configure(args[i]);
+        }
+        int n = sweep.run(new File(args[0]));
+        System.out.printf("%d runs completed\n", n);
+    }
+
+    /**
+     * Applies a setting of the form name=value or name=value,value,...
+     */
+    void configure(String setting) {
+        String[] parts = setting.split("=", 2);
+        Preconditions.checkArgument(parts.length == 2, "Expected name=value but got %s", setting);
+        String name = parts[0].trim();
+        String value = parts[1].trim();
+        switch (name) {
+            case "replicates":
+                replicates = Integer.parseInt(value);
+                break;
+            case "threads":
+                threads = Integer.parseInt(value);
+                break;
+            case "batch":
+                batchLength = Double.parseDouble(value);
+                break;
+            case "precision":
+                precision = Double.parseDouble(value);
+                break;
+            case "time":
+                limit = Double.parseDouble(value);
+                break;
+            default:
+                Preconditions.checkArgument(grid.containsKey(name), "Unknown setting %s", name);
+                List<String> values = new ArrayList<>();
+                for (String v : value.split(",")) {
+                    v = v.trim();
+                    // normalize so that the same run is always described the same way
+                    if (name.equals("strategy")) {
+                        v = Strategy.valueOf(v.toUpperCase()).name().toLowerCase();
+                    } else if (name.equals("cars")) {
+                        v = Integer.toString(Integer.parseInt(v));
+                    } else {
+                        double x = Double.parseDouble(v);
+                        // anything else is a distance or a time and zero would hang a run
+                        Preconditions.checkArgument(x > 0, "%s must be positive, got %s", name, v);
+                        v = format(x);
+                    }
+                    values.add(v);
+                }
+                grid.put(name, values);
+        }
+    }
+
+    /**
+     * Runs everything in the grid that isn't already in the results file.
+     *
+     * @param results Where results go.
+     * @return How many runs were done.
+     * @throws IOException If the results file can't be read or written.
+     * @throws InterruptedException If we get interrupted while waiting for runs.
+     */
+    int run(File results) throws IOException, InterruptedException {
+        dropPartialLine(results);
+        Set<String> done = finished(results);
+        boolean fresh = !results.exists() || results.length() == 0;
+
+        List<Run> todo = new ArrayList<>();
+        for (Run r : runs()) {
+            if (!done.contains(r.key())) {
+                todo.add(r);
+            }
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(
+                new FileOutputStream(results, true), StandardCharsets.UTF_8))) {
+            if (fresh) {
+                out.printf("%s\n", HEADER);
+                out.flush();
+            }
+            List<Future<?>> pending = new ArrayList<>();
+            for (Run r : todo) {
+                pending.add(pool.submit(() -> {
+                    String line = r.execute();
+                    synchronized (out) {
+                        out.printf("%s\n", line);
+                        out.flush();
+                    }
+                }));
+            }
+            for (Future<?> f : pending) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("Run failed", e.getCause());
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return todo.size();
+    }
+
+    /**
+     * Lists every run in the grid. Reservation window and radius only matter to
+     * cars that make reservations, so other strategies get one run per point in
+     * the rest of the grid with those columns left empty.
+     */
+    List<Run> runs() {
+        List<Double> none = Arrays.asList(Double.NaN);
+        List<Run> r = new ArrayList<>();
+        for (String cars : grid.get("cars")) {
+            for (String spacing : grid.get("spacing")) {
+                for (String name : grid.get("strategy")) {
+                    Strategy strategy = Strategy.valueOf(name.toUpperCase());
+                    boolean reserves = strategy == Strategy.RESERVE;
+                    for (double window : reserves ? values("window") : none) {
+                        for (double radius : reserves ? values("radius") : none) {
+                            for (int i = 0; i < replicates; i++) {
+                                r.add(new Run(Integer.parseInt(cars), Double.parseDouble(spacing),
+                                        window, radius, strategy, i));
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return r;
+    }
+
+    private List<Double> values(String name) {
+        List<Double> r = new ArrayList<>();
+        for (String v : grid.get(name)) {
+            r.add(Double.parseDouble(v));
+        }
+        return r;
+    }
+
+    /**
+     * Reads the keys of runs that are already in a results file.
+     */
+    private static Set<String> finished(File results) throws IOException {
+        Set<String> r = new HashSet<>();
+        if (!results.exists() || results.length() == 0) {
+            return r;
+        }
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(results), StandardCharsets.UTF_8))) {
+            String line = in.readLine();
+            if (line != null && !line.equals(HEADER)) {
+                throw new IOException(String.format("%s is not a results file for this sweep", results));
+            }
+            while ((line = in.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        int columns = HEADER.split(",").length;
+        for (String line : lines) {
+            String[] fields = line.split(",");
+            if (fields.length == columns) {
+                r.add(String.join(",", Arrays.copyOf(fields, KEYS.length)));
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Cuts off a last line that has no newline. That can only come from being
+     * killed mid-write and it may have been cut off anywhere, even in the last
+     * field, so the run it describes has to be redone. Removing it keeps it from
+     * ever being mistaken for a real result.
+     */
+    private static void dropPartialLine(File results) throws IOException {
+        if (!results.exists()) {
+            return;
+        }
+        try (RandomAccessFile f = new RandomAccessFile(results, "rw")) {
+            long end = f.length();
+            while (end > 0) {
+                f.seek(end - 1);
+                if (f.read() == '\n') {
+                    break;
+                }
+                end--;
+            }
+            f.setLength(end);
+        }
+    }
+
+    /**
+     * Like format, but NaN (meaning the setting doesn't apply) becomes an empty field.
+     */
+    private static String formatOptional(double v) {
+        return Double.isNaN(v) ? "" : format(v);
+    }
+
+    private static String format(double v) {
+        return v == Math.rint(v) ? Long.toString((long) v) : Double.toString(v);
+    }
+
+    /**
+     * One point in the grid.
+     */
+    class Run {
+        private final int cars;
+        private final double spacing;
+        private final double window;
+        private final double radius;
+        private final Strategy strategy;
+        private final int replicate;
+
+        Run(int cars, double spacing, double window, double radius, Strategy strategy, int replicate) {
+            this.cars = cars;
+            this.spacing = spacing;
+            this.window = window;
+            this.radius = radius;
+            this.strategy = strategy;
+            this.replicate = replicate;
+        }
+
+        String key() {
+            return String.format("%d,%s,%s,%s,%s,%d", cars, format(spacing), formatOptional(window), formatOptional(radius),
+                    strategy.name().toLowerCase(), replicate);
+        }
+
+        /**
+         * Each run gets its own seed that depends only on what the run is, so
+         * results don't depend on the order runs happen in.
+         */
+        long seed() {
+            return key().hashCode() * 0x9E3779B97F4A7C15L;
+        }
+
+        /**
+         * Does the run.
+         *
+         * @return A line for the results file.
+         */
+        String execute() {
+            ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+            long start = mx.getCurrentThreadCpuTime();
+            World w = new World(spacing);
+            w.setSeed(seed());
+            if (!Double.isNaN(window)) {
+                w.set("reservationWindow", window);
+            }
+            if (!Double.isNaN(radius)) {
+                w.set("reservationRadius", radius);
+            }
+            for (int i = 0; i < cars; i++) {
+                Car c = new Car(w);
+                c.setUseRandomWalk(strategy == Strategy.WALK);
+                c.setUseReservations(strategy == Strategy.RESERVE);
+            }
+            RunControl.Result r = new RunControl<>(w, batchLength, precision)
+                    .metric("occupancy", RunControl.occupancy())
+                    .metric("searchTime", RunControl.searchTime())
+                    .run(limit);
+            RunControl.Estimate occupancy = r.getEstimate("occupancy");
+            RunControl.Estimate searchTime = r.getEstimate("searchTime");
+            // csv doesn't like locales that use commas for decimal points
+            return String.format(Locale.ROOT, "%s,%d,%.0f,%.0f,%d,%s,%.6f,%.6f,%.3f,%.3f,%.3f",
+                    key(), seed(), r.getWarmup(), w.now(), r.getBatches(), r.isConverged(),
+                    occupancy.getMean(), occupancy.getHalfWidth(),
+                    searchTime.getMean(), searchTime.getHalfWidth(),
+                    (mx.getCurrentThreadCpuTime() - start) / 1e9);
+        }
+    }
+}
@@ -1,7 +1,11 @@
 package com.mapr.traffic;
 
+import com.google.common.base.Preconditions;
 import com.google.common.geometry.*;
 
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.concurrent.atomic.AtomicReference;
@@ -14,18 +18,102 @@ class World extends Sim<World> {
     private static final int X_MAX = 3000;
     private static final int Y_MAX = 3000;
 
+    // parking spots are every 10 meters unless we say otherwise
+    static final double DEFAULT_SPOT_SPACING = 10;
+
+    // how long a reservation lasts and how far away cars start making them
+    static final double DEFAULT_RESERVATION_WINDOW = 30;
+    static final double DEFAULT_RESERVATION_RADIUS = 800;
+
+    // identifies checkpoint files
+    private static final int CHECKPOINT_MAGIC = 0x50534d32;
+
+    private final double spotSpacing;
+
+    // copies of properties that cars look at constantly, see set()
+    private double xMax;
+    private double yMax;
+    private double reservationWindow;
+    private double reservationRadius;
+
     private SortedMap<Long, ParkingSpot> spots = new TreeMap<>();
+    private SpotArray spotArray;
+    private OccupancyIndex occupancy = new OccupancyIndex(this, spots, OccupancyIndex.DEFAULT_LEVELS);
+    private List<Car> cars = new ArrayList<>();
+    private CarIndex carIndex = new CarIndex();
+
+    // running totals for how long it takes to find parking
+    private long searches = 0;
+    private double totalSearchTime = 0;
 
     World() {
+        this(DEFAULT_SPOT_SPACING);
+    }
+
+    /**
+     * @param spotSpacing Distance between parking spots in meters.
+     */
+    World(double spotSpacing) {
+        Preconditions.checkArgument(spotSpacing > 0, "Spot spacing must be positive, got %s", spotSpacing);
+        this.spotSpacing = spotSpacing;
         set("xMax", X_MAX);
         set("yMax", Y_MAX);
-        // parking spots are every 10 meters within our test ground
-        for (double x = 5; x < X_MAX; x += 10) {
-            for (double y = 5; y < Y_MAX; y += 10) {
+        set("reservationWindow", DEFAULT_RESERVATION_WINDOW);
+        set("reservationRadius", DEFAULT_RESERVATION_RADIUS);
+        // parking spots are on a grid within our test ground
+        for (double x = spotSpacing / 2; x < X_MAX; x += spotSpacing) {
+            for (double y = spotSpacing / 2; y < Y_MAX; y += spotSpacing) {
                 ParkingSpot spot = new ParkingSpot(x, y);
-                spots.put(S2CellId.fromLatLng(spot.getLocation()).id(), spot);
+                spots.put(spot.getCellId().id(), spot);
+                occupancy.add(spot);
             }
         }
+        spotArray = new SpotArray(spots);
+    }
+
+    /**
+     * Sets a property. Properties that cars need on every step are also copied into
+     * fields here so that they don't cost a hash lookup each time.
+     */
+    @Override
+    public void set(String key, double value) {
+        super.set(key, value);
+        switch (key) {
+            case "xMax":
+                xMax = value;
+                break;
+            case "yMax":
+                yMax = value;
+                break;
+            case "reservationWindow":
+                reservationWindow = value;
+                break;
+            case "reservationRadius":
+                reservationRadius = value;
+                break;
+            default:
+                // nothing cached
+        }
+    }
+
+    double getXMax() {
+        return xMax;
+    }
+
+    double getYMax() {
+        return yMax;
+    }
+
+    double getReservationWindow() {
+        return reservationWindow;
+    }
+
+    double getReservationRadius() {
+        return reservationRadius;
+    }
+
+    double getSpotSpacing() {
+        return spotSpacing;
     }
 
     /**
@@ -43,6 +131,8 @@ class World extends Sim<World> {
 
     /**
      * Does the actual parking spot search. This is exposed this way for testing.
+     * Our own spot table is searched using a flattened copy. Any other table gets
+     * searched one spot at a time.
      *
      * @param spots The table to search.
      * @param x     The target.
@@ -51,6 +141,10 @@ class World extends Sim<World> {
      * @return The nearest spot or null.
      */
     ParkingSpot getParkingSpot(SortedMap<Long, ParkingSpot> spots, double x, double y, double limit) {
+        if (spots == this.spots && spotArray != null && spotArray.size() == spots.size()) {
+            return spotArray.nearestFree(this, x, y, limit);
+        }
+
         S2LatLng base = Geo.getS2LatLng(x, y);
 
         AtomicReference<ParkingSpot> best = new AtomicReference<>();
@@ -58,7 +152,7 @@ class World extends Sim<World> {
         Geo.scan(spots, x, y, limit,
                 (p, i) -> {
                     double ds = p.getLocation().getEarthDistance(base);
-                    if (!p.isInUse(this) && (best.get() == null || ds < closest.get())) {
+                    if (ds <= limit && !p.isInUse(this) && (best.get() == null || ds < closest.get())) {
                         best.set(p);
                         closest.set(ds);
                     }
@@ -67,8 +161,168 @@ class World extends Sim<World> {
         return best.get();
     }
 
+    /**
+     * Records that a car has finished searching and has parked.
+     *
+     * @param searchTime How long the search took.
+     */
+    void parked(double searchTime) {
+        searches++;
+        totalSearchTime += searchTime;
+    }
+
+    @SuppressWarnings("WeakerAccess")
+    public long getSearches() {
+        return searches;
+    }
+
+    @SuppressWarnings("WeakerAccess")
+    public double getTotalSearchTime() {
+        return totalSearchTime;
+    }
+
     @SuppressWarnings("WeakerAccess")
     public SortedMap<Long, ParkingSpot> getSpotTable() {
         return spots;
     }
+
+    /**
+     * Returns the per-cell occupancy counts for all of our parking spots. Use this instead
+     * of scanning the spot table when you want to know how full some area is.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public OccupancyIndex getOccupancy() {
+        return occupancy;
+    }
+
+    /**
+     * Returns the index of where all the cars are.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public CarIndex getCarIndex() {
+        return carIndex;
+    }
+
+    /**
+     * Adds a car to our list.
+     *
+     * @return The id for the new car.
+     */
+    int addCar(Car car) {
+        cars.add(car);
+        return cars.size() - 1;
+    }
+
+    @SuppressWarnings("WeakerAccess")
+    public List<Car> getCars() {
+        return cars;
+    }
+
+    /**
+     * Writes the complete state of the simulation in a compact binary form. This
+     * includes the clock, the random number generator, every car along with its
+     * next event and every parking spot that is occupied or reserved. Monitors
+     * added with every() are not saved.
+     *
+     * The only events that can be saved are those that belong to cars, which
+     * is all there ever are unless somebody scheduled something by hand.
+     *
+     * @param output Where to write the checkpoint.
+     * @throws IOException If the write fails.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public void checkpoint(OutputStream output) throws IOException {
+        if (getFuture().size() != cars.size()) {
+            throw new IllegalStateException(String.format("Can't checkpoint %d events for %d cars",
+                    getFuture().size(), cars.size()));
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output));
+        out.writeInt(CHECKPOINT_MAGIC);
+        out.writeDouble(spotSpacing);
+        writeState(out);
+        out.writeLong(searches);
+        out.writeDouble(totalSearchTime);
+
+        out.writeInt(cars.size());
+        for (Car car : cars) {
+            car.writeState(out);
+        }
+
+        // most spots are empty so we only write the interesting ones
+        int used = 0;
+        for (ParkingSpot spot : spots.values()) {
+            if (spot.isFilled() || spot.getReservedBy() != null) {
+                used++;
+            }
+        }
+        out.writeInt(spots.size());
+        out.writeInt(used);
+        for (ParkingSpot spot : spots.values()) {
+            if (spot.isFilled() || spot.getReservedBy() != null) {
+                out.writeLong(spot.getCellId().id());
+                out.writeBoolean(spot.isFilled());
+                out.writeDouble(spot.getReservedUntil());
+                out.writeInt(spot.getReservedBy() == null ? -1 : spot.getReservedBy().getId());
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Builds a new world from a checkpoint.
+     *
+     * @param input Where to read the checkpoint from.
+     * @return A world that will behave exactly as the original would have.
+     * @throws IOException If the read fails or the checkpoint doesn't make sense.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public static World restore(InputStream input) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(input));
+        if (in.readInt() != CHECKPOINT_MAGIC) {
+            throw new IOException("Not a checkpoint");
+        }
+        World w = new World(in.readDouble());
+        w.readState(in);
+        w.searches = in.readLong();
+        w.totalSearchTime = in.readDouble();
+
+        int n = in.readInt();
+        for (int i = 0; i < n; i++) {
+            Car.readState(w, in);
+        }
+
+        if (in.readInt() != w.spots.size()) {
+            throw new IOException("Checkpoint is for a different set of parking spots");
+        }
+        int used = in.readInt();
+        for (int i = 0; i < used; i++) {
+            long id = in.readLong();
+            boolean filled = in.readBoolean();
+            double reservedUntil = in.readDouble();
+            int reservedBy = in.readInt();
+            ParkingSpot spot = w.spots.get(id);
+            if (spot == null || reservedBy >= w.cars.size()) {
+                throw new IOException("Bad parking spot in checkpoint");
+            }
+            spot.restore(filled, reservedUntil, reservedBy < 0 ? null : w.cars.get(reservedBy));
+        }
+        return w;
+    }
+
+    /**
+     * Makes an independent copy of this world. Copies can be sent off in different
+     * directions by changing the random seed or the strategy used by the cars.
+     *
+     * @return The copy.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public World fork() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            checkpoint(bytes);
+            return restore(new ByteArrayInputStream(bytes.toByteArray()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 }
@@ -0,0 +1,55 @@
+package com.mapr.traffic;
+
+import com.google.common.geometry.S2LatLng;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CarIndexTest {
+    /**
+     * Lets cars wander around and checks that radius queries agree with looking
+     * at every car.
+     */
+    @Test
+    public void matchesBruteForce() {
+        World w = new World();
+        List<Car> cars = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            cars.add(new Car(w));
+        }
+        CarIndex index = w.getCarIndex();
+        assertEquals(cars.size(), index.size());
+        // everybody starts at the origin
+        assertEquals(cars.size(), index.count(0, 0, 10, null));
+
+        for (double t = 100; t <= 500; t += 100) {
+            w.run(t);
+            assertEquals(cars.size(), index.size());
+            for (double x = 0; x <= 3000; x += 750) {
+                for (double y = 0; y <= 3000; y += 750) {
+                    for (double radius : new double[]{50, 300, 1000}) {
+                        S2LatLng center = Geo.getS2LatLng(x, y);
+                        HashSet<Car> expected = new HashSet<>();
+                        int searching = 0;
+                        for (Car car : cars) {
+                            if (car.distanceTo(center) <= radius) {
+                                expected.add(car);
+                                if (car.getState() == Car.State.SEARCHING) {
+                                    searching++;
+                                }
+                            }
+                        }
+                        List<Car> found = index.near(x, y, radius, null);
+                        assertEquals(expected.size(), found.size());
+                        assertEquals(expected, new HashSet<>(found));
+                        assertEquals(searching, index.count(x, y, radius, Car.State.SEARCHING));
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.mapr.traffic;
+
+import com.google.common.geometry.S2CellId;
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class OccupancyIndexTest {
+    /**
+     * Runs a bunch of cars for a while and checks that the incremental counts
+     * match what a brute force scan of the spot table says.
+     */
+    @Test
+    public void matchesScan() {
+        World w = new World();
+        for (int i = 0; i < 50; i++) {
+            new Car(w).setUseReservations((i & 1) != 0);
+        }
+
+        OccupancyIndex occupancy = w.getOccupancy();
+        for (double t = 300; t <= 600; t += 200) {
+            w.run(t);
+
+            List<S2CellId> covering = Geo.regionSearch(Geo.getS2LatLng(1500, 1500), 800);
+            OccupancyIndex.Counts c = occupancy.occupancy(covering);
+            int[] brute = bruteForce(w, covering);
+            assertEquals(brute[0], c.getTotal());
+            assertEquals(brute[1], c.getOccupied());
+            assertEquals(brute[2], c.getReserved());
+            assertEquals(brute[0] - brute[1] - brute[2], c.getFree());
+
+            // a single level should add up to everything
+            int total = 0;
+            int occupied = 0;
+            for (OccupancyIndex.Counts cell : occupancy.level(15).values()) {
+                total += cell.getTotal();
+                occupied += cell.getOccupied();
+            }
+            assertEquals(w.getSpotTable().size(), total);
+            int[] all = bruteForce(w, null);
+            assertEquals(all[1], occupied);
+        }
+        assertTrue(occupancy.occupancy(1500, 1500, 800).getOccupied() > 0);
+    }
+
+    @Test
+    public void exporter() {
+        World w = new World();
+        for (int i = 0; i < 20; i++) {
+            new Car(w);
+        }
+        StringWriter s = new StringWriter();
+        AtomicInteger snapshots = new AtomicInteger();
+        OccupancyExporter exporter = new OccupancyExporter(new PrintWriter(s), 13);
+        w.every(60, sim -> {
+            snapshots.incrementAndGet();
+            return exporter.export(sim);
+        });
+        w.run(600);
+
+        // one at time zero and then every minute
+        assertTrue(snapshots.get() >= 10);
+        String[] lines = s.toString().split("\n");
+        assertEquals("t,level,cell,occupied,reserved,free", lines[0]);
+        int cells = w.getOccupancy().level(13).size();
+        assertEquals(1 + snapshots.get() * cells, lines.length);
+    }
+
+    /**
+     * Reservations that end by parking or being given up must not pile up in
+     * the expiration queue of an index that is never asked anything.
+     */
+    @Test
+    public void expirationsDontPileUp() {
+        World w = new World();
+        for (int i = 0; i < 200; i++) {
+            new Car(w).setUseReservations(true);
+        }
+        w.run(5000);
+        assertTrue(w.getSearches() > 1000);
+        // only reservations made in the last window can still be waiting
+        assertTrue(w.getOccupancy().pendingExpirations() <= 200);
+    }
+
+    private int[] bruteForce(World w, List<S2CellId> covering) {
+        int[] r = new int[3];
+        for (ParkingSpot p : w.getSpotTable().values()) {
+            boolean inside = covering == null;
+            if (!inside) {
+                for (S2CellId cell : covering) {
+                    if (cell.contains(p.getCellId())) {
+                        inside = true;
+                        break;
+                    }
+                }
+            }
+            if (inside) {
+                // isInUse has the side effect of expiring old reservations
+                p.isInUse(w);
+                r[0]++;
+                if (p.getStatus() == ParkingSpot.Status.OCCUPIED) {
+                    r[1]++;
+                } else if (p.getStatus() == ParkingSpot.Status.RESERVED) {
+                    r[2]++;
+                }
+            }
+        }
+        return r;
+    }
+}
@@ -0,0 +1,101 @@
+package com.mapr.traffic;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RunControlTest {
+    @Test
+    public void truncation() {
+        Random rand = new Random(1);
+        List<Double> values = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            values.add(10.0 * i / 30);
+        }
+        for (int i = 0; i < 170; i++) {
+            values.add(10 + rand.nextGaussian());
+        }
+        // MSER never looks past the first half and should see most of the ramp
+        int d = RunControl.truncation(values);
+        assertTrue(d >= 20 && d <= 100);
+        d = RunControl.truncation(values.subList(0, 100));
+        assertTrue(d >= 20 && d <= 50);
+
+        // a series that is still climbing has not warmed up
+        List<Double> ramp = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            ramp.add((double) i);
+        }
+        assertEquals(-1, RunControl.truncation(ramp));
+    }
+
+    @Test
+    public void studentT() {
+        assertEquals(2.093, RunControl.studentT(19), 0.002);
+        assertEquals(2.228, RunControl.studentT(10), 0.01);
+        assertEquals(1.984, RunControl.studentT(100), 0.001);
+    }
+
+    /**
+     * An autoregressive process that starts far from its steady state mean of 100.
+     */
+    @Test
+    public void autoregressive() {
+        Toy toy = new Toy();
+        RunControl.Result r = new RunControl<>(toy, 10, 0.005)
+                .metric("x", t -> t.x)
+                .run(1e5);
+        assertTrue(r.isConverged());
+        assertTrue(r.getWarmup() > 0);
+        assertTrue(r.getBatches() < 10000);
+        RunControl.Estimate e = r.getEstimate("x");
+        assertEquals(100, e.getMean(), 3 * e.getHalfWidth());
+        assertTrue(e.getHalfWidth() <= 0.5);
+    }
+
+    /**
+     * Metrics are sampled exactly at the end of each batch even when events are
+     * further apart than a batch.
+     */
+    @Test
+    public void exactBatchEnds() {
+        Toy toy = new Toy(25);
+        List<Double> times = new ArrayList<>();
+        RunControl.Result r = new RunControl<>(toy, 10, 0.005)
+                .metric("x", t -> {
+                    times.add(t.now());
+                    return t.x;
+                })
+                .run(1000);
+        assertEquals(r.getBatches(), times.size());
+        for (int i = 0; i < times.size(); i++) {
+            assertEquals(10.0 * (i + 1), times.get(i), 0);
+        }
+        assertEquals(10.0 * times.size(), toy.now(), 0);
+    }
+
+    private static class Toy extends Sim<Toy> {
+        private final Random rand = new Random(2);
+        private final double step;
+        private double x = 0;
+
+        Toy() {
+            this(1);
+        }
+
+        Toy(double step) {
+            this.step = step;
+            schedule(this::update, 0);
+        }
+
+        private Void update(Toy self) {
+            x = 0.95 * x + 5 + 2 * rand.nextGaussian();
+            schedule(this::update, now() + step);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.mapr.traffic;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SimTest {
+    /**
+     * Each monitor should see the clock at its own tick, even with several monitors.
+     */
+    @Test
+    public void monitorsInTimeOrder() {
+        Clock w = new Clock();
+        List<Double> fast = new ArrayList<>();
+        List<Double> slow = new ArrayList<>();
+        List<Double> all = new ArrayList<>();
+        w.every(10, sim -> {
+            fast.add(sim.now());
+            all.add(sim.now());
+            return null;
+        });
+        w.every(60, sim -> {
+            slow.add(sim.now());
+            all.add(sim.now());
+            return null;
+        });
+        w.schedule(sim -> null, 100);
+        w.schedule(sim -> null, 200);
+        w.run(1000);
+
+        assertEquals(Arrays.asList(0.0, 60.0, 120.0, 180.0), slow);
+        assertEquals(21, fast.size());
+        for (int i = 0; i < fast.size(); i++) {
+            assertEquals(10.0 * i, fast.get(i), 0);
+        }
+        for (int i = 1; i < all.size(); i++) {
+            assertTrue(all.get(i - 1) <= all.get(i));
+        }
+        assertEquals(200, w.now(), 0);
+    }
+
+    /**
+     * Advancing stops short of later events and leaves the clock exactly at the end.
+     */
+    @Test
+    public void advance() {
+        Clock w = new Clock();
+        List<Double> seen = new ArrayList<>();
+        for (double t : new double[]{5, 10, 70}) {
+            w.schedule(sim -> {
+                seen.add(sim.now());
+                return null;
+            }, t);
+        }
+        w.advance(10);
+        assertEquals(Arrays.asList(5.0, 10.0), seen);
+        assertEquals(10, w.now(), 0);
+
+        // nothing happens in this stretch, but the clock still moves
+        w.advance(60);
+        assertEquals(2, seen.size());
+        assertEquals(60, w.now(), 0);
+
+        w.advance(100);
+        assertEquals(Arrays.asList(5.0, 10.0, 70.0), seen);
+        assertEquals(100, w.now(), 0);
+    }
+
+    private static class Clock extends Sim<Clock> {
+    }
+}
@@ -0,0 +1,57 @@
+package com.mapr.traffic;
+
+import com.google.common.geometry.S2LatLng;
+import com.google.common.geometry.S2Point;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+public class SpotArrayTest {
+    @Test
+    public void chord() {
+        for (double meters : new double[]{1, 100, 2000}) {
+            S2LatLng a = Geo.getS2LatLng(0, 0);
+            S2LatLng b = Geo.getS2LatLng(meters, 0);
+            double ds = a.getEarthDistance(b);
+            double dx = S2Point.sub(a.toPoint(), b.toPoint()).norm2();
+            assertEquals(1, SpotArray.chordSquared(ds) / dx, 1e-6);
+        }
+    }
+
+    /**
+     * The flattened search should find exactly the same spots as the original
+     * one-at-a-time search.
+     */
+    @Test
+    public void matchesScalar() {
+        Random rand = new Random(3);
+        World w = new World();
+        // a copy of the table forces the scalar search
+        TreeMap<Long, ParkingSpot> copy = new TreeMap<>(w.getSpotTable());
+        for (ParkingSpot spot : copy.values()) {
+            if (rand.nextDouble() < 0.8) {
+                spot.park(w, null);
+            }
+        }
+
+        int found = 0;
+        for (int i = 0; i < 200; i++) {
+            double x = rand.nextDouble() * 3000;
+            double y = rand.nextDouble() * 3000;
+            double limit = rand.nextDouble() * 100;
+
+            ParkingSpot fast = w.search(x, y, limit);
+            ParkingSpot slow = w.getParkingSpot(copy, x, y, limit);
+            assertSame(slow, fast);
+            if (fast != null) {
+                assertTrue(fast.getLocation().getEarthDistance(Geo.getS2LatLng(x, y)) <= limit);
+                found++;
+            }
+        }
+        // make sure both outcomes got exercised
+        assertTrue(found > 20 && found < 200);
+    }
+}
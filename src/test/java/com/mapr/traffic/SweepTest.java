@@ -0,0 +1,132 @@
+package com.mapr.traffic;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SweepTest {
+    @Test
+    public void grid() {
+        Sweep sweep = new Sweep();
+        sweep.configure("cars=10,20");
+        sweep.configure("spacing=20");
+        sweep.configure("strategy=reserve,WALK");
+        sweep.configure("replicates=2");
+        List<Sweep.Run> runs = sweep.runs();
+        assertEquals(8, runs.size());
+        HashSet<String> keys = new HashSet<>();
+        HashSet<Long> seeds = new HashSet<>();
+        for (Sweep.Run r : runs) {
+            keys.add(r.key());
+            seeds.add(r.seed());
+        }
+        assertEquals(8, keys.size());
+        assertEquals(8, seeds.size());
+        assertTrue(keys.contains("10,20,,,walk,1"));
+        assertTrue(keys.contains("20,20,30,800,reserve,0"));
+
+        // window and radius only multiply the strategy that uses them
+        sweep.configure("window=30,60");
+        sweep.configure("radius=400,800,1200");
+        sweep.configure("strategy=walk,search,reserve");
+        sweep.configure("replicates=1");
+        runs = sweep.runs();
+        assertEquals(2 * (1 + 1 + 2 * 3), runs.size());
+        keys.clear();
+        for (Sweep.Run r : runs) {
+            keys.add(r.key());
+        }
+        assertEquals(runs.size(), keys.size());
+    }
+
+    @Test
+    public void badValues() {
+        for (String setting : new String[]{"spacing=0", "spacing=10,-5", "window=0", "radius=-800"}) {
+            try {
+                new Sweep().configure(setting);
+                fail("Should have rejected " + setting);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroSpacing() {
+        new World(0);
+    }
+
+    /**
+     * Runs a tiny sweep, then runs it again to make sure nothing gets redone.
+     */
+    @Test
+    public void restart() throws Exception {
+        File results = File.createTempFile("sweep", ".csv");
+        assertTrue(results.delete());
+        try {
+            Sweep sweep = new Sweep();
+            sweep.configure("cars=10");
+            sweep.configure("spacing=50");
+            sweep.configure("strategy=search,reserve");
+            sweep.configure("time=600");
+            sweep.configure("threads=2");
+            assertEquals(2, sweep.run(results));
+            List<String> lines = Files.readAllLines(results.toPath(), StandardCharsets.UTF_8);
+            assertEquals(3, lines.size());
+            assertTrue(lines.get(0).startsWith("cars,spacing,window,radius,strategy,replicate,"));
+
+            // a second pass has nothing to do until we widen the grid
+            assertEquals(0, sweep.run(results));
+            sweep.configure("strategy=walk,search,reserve");
+            assertEquals(1, sweep.run(results));
+            lines = Files.readAllLines(results.toPath(), StandardCharsets.UTF_8);
+            assertEquals(4, lines.size());
+            assertEquals(lines.get(0).split(",").length, lines.get(3).split(",").length);
+
+            // a run that was killed while writing gets done over
+            String walk = lines.get(3);
+            String partial = String.join("\n", lines.subList(0, 3)) + "\n" + walk.substring(0, 30);
+            Files.write(results.toPath(), partial.getBytes(StandardCharsets.UTF_8));
+            assertEquals(1, sweep.run(results));
+            checkRows(results, 4);
+
+            // even if it was cut off in the very last field
+            lines = Files.readAllLines(results.toPath(), StandardCharsets.UTF_8);
+            partial = String.join("\n", lines.subList(0, 3)) + "\n" + walk.substring(0, walk.length() - 1);
+            Files.write(results.toPath(), partial.getBytes(StandardCharsets.UTF_8));
+            assertEquals(1, sweep.run(results));
+            lines = checkRows(results, 4);
+            // everything but the cpu time should be repeatable
+            assertEquals(walk.substring(0, walk.lastIndexOf(',')),
+                    lines.get(3).substring(0, lines.get(3).lastIndexOf(',')));
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            results.delete();
+        }
+    }
+
+    /**
+     * Checks that a results file has the expected number of lines, that every row
+     * is complete and that no run shows up twice.
+     */
+    private List<String> checkRows(File results, int expected) throws IOException {
+        List<String> lines = Files.readAllLines(results.toPath(), StandardCharsets.UTF_8);
+        assertEquals(expected, lines.size());
+        int columns = lines.get(0).split(",", -1).length;
+        HashSet<String> keys = new HashSet<>();
+        for (String line : lines.subList(1, lines.size())) {
+            String[] fields = line.split(",", -1);
+            assertEquals(columns, fields.length);
+            assertTrue(line, keys.add(String.join(",", Arrays.copyOf(fields, 6))));
+        }
+        return lines;
+    }
+}
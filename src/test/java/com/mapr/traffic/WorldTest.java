@@ -6,6 +6,8 @@ import com.google.common.geometry.R2Vector;
 import com.google.common.geometry.S2LatLng;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.PrintWriter;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -75,4 +77,52 @@ public class WorldTest {
         assertEquals(1, areas.count(65.42));
         assertEquals(3, areas.count(16.36));
     }
-}
\ No newline at end of file
+
+    /**
+     * A world restored from a checkpoint should carry on exactly as the original does.
+     */
+    @Test
+    public void checkpoint() throws Exception {
+        World w1 = new World();
+        w1.setSeed(1);
+        for (int i = 0; i < 50; i++) {
+            Car c = new Car(w1);
+            c.setUseRandomWalk(i % 3 == 0);
+            c.setUseReservations(i % 2 == 0);
+        }
+        w1.run(400);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        w1.checkpoint(bytes);
+        // should be a few kB for 50 cars, not a copy of every parking spot
+        assertTrue(bytes.size() < 10000);
+        World w2 = World.restore(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(w1.now(), w2.now(), 0);
+        World w3 = w1.fork();
+
+        for (double t = 500; t <= 1000; t += 100) {
+            w1.run(t);
+            w2.run(t);
+            w3.run(t);
+            for (World w : new World[]{w2, w3}) {
+                assertEquals(w1.now(), w.now(), 0);
+                assertEquals(w1.getSearches(), w.getSearches());
+                assertEquals(w1.getOccupancy().total().getOccupied(), w.getOccupancy().total().getOccupied());
+                assertEquals(w1.getOccupancy().total().getReserved(), w.getOccupancy().total().getReserved());
+                for (int i = 0; i < w1.getCars().size(); i++) {
+                    Car c1 = w1.getCars().get(i);
+                    Car c2 = w.getCars().get(i);
+                    assertEquals(c1.getState(), c2.getState());
+                    assertEquals(c1.getX(), c2.getX(), 0);
+                    assertEquals(c1.getY(), c2.getY(), 0);
+                    if (c1.getSpot() == null) {
+                        assertNull(c2.getSpot());
+                    } else {
+                        assertEquals(c1.getSpot().getCellId(), c2.getSpot().getCellId());
+                    }
+                }
+            }
+        }
+        assertTrue(w1.getSearches() > 0);
+    }
+}